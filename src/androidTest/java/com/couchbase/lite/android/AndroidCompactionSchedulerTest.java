@@ -0,0 +1,244 @@
+package com.couchbase.lite.android;
+
+import com.couchbase.lite.AsyncTask;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Document;
+import com.couchbase.lite.LiteTestCase;
+import com.couchbase.lite.SavedRevision;
+import com.couchbase.lite.storage.Cursor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AndroidCompactionSchedulerTest extends LiteTestCase {
+
+    /**
+     * Records the callbacks for the test database.
+     */
+    class TestCompactionListener implements AndroidCompactionScheduler.CompactionListener {
+
+        private CountDownLatch doneSignal = new CountDownLatch(1);
+        private AtomicInteger startedCount = new AtomicInteger(0);
+        private AtomicBoolean wasFullCompaction = new AtomicBoolean(false);
+        private volatile Throwable error;
+
+        @Override
+        public void compactionStarted(String databaseName, boolean fullCompaction) {
+            if (databaseName.equals(database.getName())) {
+                startedCount.incrementAndGet();
+                wasFullCompaction.set(fullCompaction);
+            }
+        }
+
+        @Override
+        public void compactionFinished(String databaseName, Throwable error) {
+            if (databaseName.equals(database.getName())) {
+                this.error = error;
+                doneSignal.countDown();
+            }
+        }
+    }
+
+    private AndroidCompactionScheduler createScheduler(TestCompactionListener listener) {
+        AndroidCompactionScheduler scheduler = new AndroidCompactionScheduler(new AndroidContext(getContext()), manager);
+        scheduler.setRequireCharging(false);
+        scheduler.addCompactionListener(listener);
+        return scheduler;
+    }
+
+    public void testClearsObsoleteRevisionBodies() throws Exception {
+
+        createDocumentWithRevisions(5);
+        assertEquals(5, getObsoleteRevisionCount());
+
+        TestCompactionListener listener = new TestCompactionListener();
+        AndroidCompactionScheduler scheduler = createScheduler(listener);
+        try {
+            scheduler.setObsoleteRevisionThreshold(5);
+            scheduler.checkDatabases();
+
+            assertTrue(listener.doneSignal.await(30, TimeUnit.SECONDS));
+            assertNull(listener.error);
+            assertFalse(listener.wasFullCompaction.get());
+            assertEquals(0, getObsoleteRevisionCount());
+        } finally {
+            scheduler.stop();
+        }
+
+    }
+
+    public void testFullCompactionIsOptIn() throws Exception {
+
+        createDocumentWithRevisions(5);
+
+        TestCompactionListener listener = new TestCompactionListener();
+        AndroidCompactionScheduler scheduler = createScheduler(listener);
+        try {
+            scheduler.setObsoleteRevisionThreshold(5);
+            scheduler.setAllowFullCompaction(true);
+            scheduler.checkDatabases();
+
+            assertTrue(listener.doneSignal.await(30, TimeUnit.SECONDS));
+            assertNull(listener.error);
+            assertTrue(listener.wasFullCompaction.get());
+            assertEquals(0, getObsoleteRevisionCount());
+        } finally {
+            scheduler.stop();
+        }
+
+    }
+
+    /**
+     * checkDatabases() without start() must still reclaim pages, not just report a run.
+     */
+    public void testReclaimsFreePagesWithoutStart() throws Exception {
+
+        AndroidSQLiteStorageEngine storageEngine = (AndroidSQLiteStorageEngine) database.getDatabase();
+        int freePages = AndroidSQLiteStorageEngineTest.createFreePages(storageEngine);
+        assertTrue(freePages > 10);
+
+        TestCompactionListener listener = new TestCompactionListener();
+        AndroidCompactionScheduler scheduler = createScheduler(listener);
+        try {
+            scheduler.setFreePageThreshold(10);
+            scheduler.checkDatabases();
+
+            assertTrue(listener.doneSignal.await(30, TimeUnit.SECONDS));
+            assertNull(listener.error);
+            assertFalse(listener.wasFullCompaction.get());
+            assertEquals(0, storageEngine.getFreelistCount());
+        } finally {
+            scheduler.stop();
+        }
+
+    }
+
+    public void testCancelPendingRun() throws Exception {
+
+        AndroidSQLiteStorageEngine storageEngine = (AndroidSQLiteStorageEngine) database.getDatabase();
+        int freePages = AndroidSQLiteStorageEngineTest.createFreePages(storageEngine);
+
+        TestCompactionListener listener = new TestCompactionListener();
+        AndroidCompactionScheduler scheduler = createScheduler(listener);
+        scheduler.setFreePageThreshold(10);
+        CountDownLatch releaseExecutor = blockWorkExecutor(scheduler);
+        try {
+            assertTrue(scheduler.getScheduledDatabaseNames().contains(database.getName()));
+
+            assertTrue(scheduler.cancel(database.getName()));
+            assertFalse(scheduler.cancel(database.getName()));
+            assertTrue(scheduler.getScheduledDatabaseNames().isEmpty());
+        } finally {
+            releaseExecutor.countDown();
+            scheduler.stop();
+        }
+
+        drainWorkExecutor();
+        assertEquals(0, listener.startedCount.get());
+        assertEquals(freePages, storageEngine.getFreelistCount());
+
+    }
+
+    public void testStopCancelsPendingRuns() throws Exception {
+
+        AndroidSQLiteStorageEngine storageEngine = (AndroidSQLiteStorageEngine) database.getDatabase();
+        int freePages = AndroidSQLiteStorageEngineTest.createFreePages(storageEngine);
+
+        TestCompactionListener listener = new TestCompactionListener();
+        AndroidCompactionScheduler scheduler = createScheduler(listener);
+        scheduler.setFreePageThreshold(10);
+        scheduler.start();
+        CountDownLatch releaseExecutor = blockWorkExecutor(scheduler);
+        try {
+            assertFalse(scheduler.getScheduledDatabaseNames().isEmpty());
+
+            scheduler.stop();
+            assertTrue(scheduler.getScheduledDatabaseNames().isEmpty());
+        } finally {
+            releaseExecutor.countDown();
+            scheduler.stop();
+        }
+
+        drainWorkExecutor();
+        assertEquals(0, listener.startedCount.get());
+        assertEquals(freePages, storageEngine.getFreelistCount());
+
+    }
+
+    public void testCancelWithNothingScheduled() throws Exception {
+
+        TestCompactionListener listener = new TestCompactionListener();
+        AndroidCompactionScheduler scheduler = createScheduler(listener);
+        try {
+            assertFalse(scheduler.cancel(database.getName()));
+            assertTrue(scheduler.getScheduledDatabaseNames().isEmpty());
+        } finally {
+            scheduler.stop();
+        }
+
+    }
+
+    private void createDocumentWithRevisions(int numUpdates) throws Exception {
+        Map<String,Object> properties = new HashMap<String,Object>();
+        properties.put("testName", "AndroidCompactionSchedulerTest");
+        properties.put("tag", 1337);
+
+        Document doc = createDocumentWithProperties(database, properties);
+        SavedRevision rev = doc.getCurrentRevision();
+        for (int i=0; i<numUpdates; i++) {
+            Map<String,Object> properties2 = new HashMap<String,Object>(properties);
+            properties2.put("tag", i);
+            rev = rev.createRevision(properties2);
+        }
+    }
+
+    private int getObsoleteRevisionCount() {
+        Cursor cursor = database.getDatabase().rawQuery(
+                "SELECT COUNT(*) FROM revs WHERE current=0 AND json IS NOT NULL", null);
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Has the scheduler schedule its runs from the Manager's work executor, as checkDatabases()
+     * does, and then occupies the executor until the returned latch is released, so that those
+     * runs stay pending.
+     */
+    private CountDownLatch blockWorkExecutor(final AndroidCompactionScheduler scheduler) throws Exception {
+        final CountDownLatch blocking = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        database.runAsync(new AsyncTask() {
+            @Override
+            public void run(Database database) {
+                scheduler.scheduleOpenDatabases();
+                blocking.countDown();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // fall through and let the executor continue
+                }
+            }
+        });
+        assertTrue(blocking.await(30, TimeUnit.SECONDS));
+        return release;
+    }
+
+    /**
+     * Waits for everything queued on the Manager's work executor so far to have run.
+     */
+    private void drainWorkExecutor() throws Exception {
+        database.runAsync(new AsyncTask() {
+            @Override
+            public void run(Database database) {
+            }
+        }).get(30, TimeUnit.SECONDS);
+    }
+
+}
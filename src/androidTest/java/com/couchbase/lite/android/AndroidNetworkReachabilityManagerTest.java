@@ -0,0 +1,371 @@
+package com.couchbase.lite.android;
+
+import android.content.BroadcastReceiver;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.couchbase.lite.LiteTestCase;
+import com.couchbase.lite.NetworkReachabilityListener;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AndroidNetworkReachabilityManagerTest extends LiteTestCase {
+
+    private static final long DEBOUNCE_DELAY_MS = 200;
+    private static final long RECONNECT_DELAY_MS = 3000;
+
+    private HandlerThread handlerThread;
+    private Handler handler;
+    private CountingListener listener;
+
+    /**
+     * Lets startListening() run without registering for real connectivity broadcasts, so the
+     * tests are the only source of connectivity changes.
+     */
+    class NoBroadcastsContext extends ContextWrapper {
+
+        NoBroadcastsContext(android.content.Context base) {
+            super(base);
+        }
+
+        @Override
+        public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+            return null;
+        }
+
+        @Override
+        public void unregisterReceiver(BroadcastReceiver receiver) {
+        }
+    }
+
+    class CountingListener implements NetworkReachabilityListener {
+
+        private AtomicInteger reachableCount = new AtomicInteger(0);
+        private AtomicInteger unreachableCount = new AtomicInteger(0);
+
+        @Override
+        public void networkReachable() {
+            reachableCount.incrementAndGet();
+        }
+
+        @Override
+        public void networkUnreachable() {
+            unreachableCount.incrementAndGet();
+        }
+
+        void reset() {
+            reachableCount.set(0);
+            unreachableCount.set(0);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        handlerThread = new HandlerThread("AndroidNetworkReachabilityManagerTest");
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+        listener = new CountingListener();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        handlerThread.quit();
+        super.tearDown();
+    }
+
+    public void testDropAndQuickReturnIsNotReported() throws Exception {
+
+        final AndroidNetworkReachabilityManager reachabilityManager = startReachabilityManager();
+        try {
+            // the first change is reported right away
+            changeConnectivity(reachabilityManager, true, ConnectivityManager.TYPE_WIFI, false);
+            assertEquals(1, listener.reachableCount.get());
+            listener.reset();
+
+            // both changes in one go, so that the debounce cannot expire in between
+            runOnHandler(new Runnable() {
+                @Override
+                public void run() {
+                    reachabilityManager.onConnectivityChanged(false, AndroidNetworkReachabilityManager.NETWORK_TYPE_NONE, false);
+                    reachabilityManager.onConnectivityChanged(true, ConnectivityManager.TYPE_WIFI, false);
+                }
+            });
+            waitForDebounce();
+
+            assertEquals(0, listener.unreachableCount.get());
+            assertEquals(0, listener.reachableCount.get());
+            assertEquals(AndroidNetworkReachabilityManager.State.CONNECTED, reachabilityManager.getReportedState());
+        } finally {
+            reachabilityManager.stopListening();
+        }
+
+    }
+
+    public void testDropIsReportedAfterDebounce() throws Exception {
+
+        final AndroidNetworkReachabilityManager reachabilityManager = startReachabilityManager();
+        try {
+            changeConnectivity(reachabilityManager, true, ConnectivityManager.TYPE_WIFI, false);
+            listener.reset();
+
+            // look at the state in the same handler run as the change, before the debounce can expire
+            final AtomicInteger unreachableBeforeDebounce = new AtomicInteger(-1);
+            final AtomicReference<AndroidNetworkReachabilityManager.State> reportedBeforeDebounce =
+                    new AtomicReference<AndroidNetworkReachabilityManager.State>();
+            runOnHandler(new Runnable() {
+                @Override
+                public void run() {
+                    reachabilityManager.onConnectivityChanged(false, AndroidNetworkReachabilityManager.NETWORK_TYPE_NONE, false);
+                    unreachableBeforeDebounce.set(listener.unreachableCount.get());
+                    reportedBeforeDebounce.set(reachabilityManager.getReportedState());
+                }
+            });
+            assertEquals(0, unreachableBeforeDebounce.get());
+            assertEquals(AndroidNetworkReachabilityManager.State.NOT_CONNECTED, reachabilityManager.getState());
+            assertEquals(AndroidNetworkReachabilityManager.State.CONNECTED, reportedBeforeDebounce.get());
+
+            waitForDebounce();
+            assertEquals(1, listener.unreachableCount.get());
+            assertEquals(AndroidNetworkReachabilityManager.State.NOT_CONNECTED, reachabilityManager.getReportedState());
+        } finally {
+            reachabilityManager.stopListening();
+        }
+
+    }
+
+    public void testMeteredNetworkUnreachableWhenUnmeteredRequired() throws Exception {
+
+        AndroidNetworkReachabilityManager reachabilityManager = startReachabilityManager();
+        try {
+            reachabilityManager.setRequireUnmeteredNetwork(true);
+
+            changeConnectivity(reachabilityManager, true, ConnectivityManager.TYPE_MOBILE, true);
+            assertEquals(0, listener.reachableCount.get());
+            assertEquals(1, listener.unreachableCount.get());
+            assertTrue(reachabilityManager.isMetered());
+            assertEquals(ConnectivityManager.TYPE_MOBILE, reachabilityManager.getNetworkType());
+            assertEquals(AndroidNetworkReachabilityManager.State.CONNECTED, reachabilityManager.getState());
+            assertEquals(AndroidNetworkReachabilityManager.State.NOT_CONNECTED, reachabilityManager.getReportedState());
+
+            changeConnectivity(reachabilityManager, true, ConnectivityManager.TYPE_WIFI, false);
+            waitForDebounce();
+            assertEquals(1, listener.reachableCount.get());
+            assertEquals(AndroidNetworkReachabilityManager.State.CONNECTED, reachabilityManager.getReportedState());
+        } finally {
+            reachabilityManager.stopListening();
+        }
+
+    }
+
+    public void testSetRequireUnmeteredNetworkIsDebounced() throws Exception {
+
+        final AndroidNetworkReachabilityManager reachabilityManager = startReachabilityManager();
+        try {
+            changeConnectivity(reachabilityManager, true, ConnectivityManager.TYPE_MOBILE, true);
+            assertEquals(1, listener.reachableCount.get());
+
+            final AtomicInteger unreachableBeforeDebounce = new AtomicInteger(-1);
+            runOnHandler(new Runnable() {
+                @Override
+                public void run() {
+                    reachabilityManager.setRequireUnmeteredNetwork(true);
+                    unreachableBeforeDebounce.set(listener.unreachableCount.get());
+                }
+            });
+            assertEquals(0, unreachableBeforeDebounce.get());
+
+            waitForDebounce();
+            assertEquals(1, listener.unreachableCount.get());
+        } finally {
+            reachabilityManager.stopListening();
+        }
+
+    }
+
+    public void testNoConnectivityBroadcast() throws Exception {
+
+        final AndroidNetworkReachabilityManager reachabilityManager = startReachabilityManager();
+        try {
+            final Intent intent = new Intent(ConnectivityManager.CONNECTIVITY_ACTION);
+            intent.putExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, true);
+            runOnHandler(new Runnable() {
+                @Override
+                public void run() {
+                    reachabilityManager.receiver.onReceive(getContext(), intent);
+                }
+            });
+
+            assertEquals(1, listener.unreachableCount.get());
+            assertEquals(AndroidNetworkReachabilityManager.State.NOT_CONNECTED, reachabilityManager.getState());
+            assertEquals(AndroidNetworkReachabilityManager.NETWORK_TYPE_NONE, reachabilityManager.getNetworkType());
+        } finally {
+            reachabilityManager.stopListening();
+        }
+
+    }
+
+    public void testReconnectWindowDoublesUpToMax() throws Exception {
+
+        AndroidNetworkReachabilityManager reachabilityManager = createReachabilityManager();
+        reachabilityManager.setReconnectJitter(1000);
+        reachabilityManager.setMaxReconnectDelay(5000);
+
+        long now = 10000;
+        assertEquals(1000, reachabilityManager.nextReconnectWindow(now));
+        assertEquals(2000, reachabilityManager.nextReconnectWindow(now += 100));
+        assertEquals(4000, reachabilityManager.nextReconnectWindow(now += 100));
+        assertEquals(5000, reachabilityManager.nextReconnectWindow(now += 100));
+        assertEquals(5000, reachabilityManager.nextReconnectWindow(now += 100));
+
+    }
+
+    public void testReconnectWindowResetsAfterQuietPeriod() throws Exception {
+
+        AndroidNetworkReachabilityManager reachabilityManager = createReachabilityManager();
+        reachabilityManager.setReconnectJitter(1000);
+        reachabilityManager.setMaxReconnectDelay(5000);
+        reachabilityManager.setFlapWindow(3000);
+
+        long now = 10000;
+        assertEquals(1000, reachabilityManager.nextReconnectWindow(now));
+        assertEquals(2000, reachabilityManager.nextReconnectWindow(now += 3000));
+        assertEquals(1000, reachabilityManager.nextReconnectWindow(now += 3001));
+
+    }
+
+    public void testDefaultBackoffStaysShort() throws Exception {
+
+        AndroidNetworkReachabilityManager reachabilityManager = createReachabilityManager();
+
+        // a device roaming between access points every couple of minutes never backs off
+        long now = 10000;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(AndroidNetworkReachabilityManager.DEFAULT_RECONNECT_JITTER_MS,
+                    reachabilityManager.nextReconnectWindow(now += 2 * 60 * 1000));
+        }
+
+        // even a flapping one waits at most maxReconnectDelay
+        for (int i = 0; i < 10; i++) {
+            assertTrue(reachabilityManager.nextReconnectWindow(now += 1000)
+                    <= AndroidNetworkReachabilityManager.DEFAULT_MAX_RECONNECT_DELAY_MS);
+        }
+
+    }
+
+    public void testDropCancelsPendingReachable() throws Exception {
+
+        AndroidNetworkReachabilityManager reachabilityManager = startReachabilityManager();
+        try {
+            // always pick the middle of the window, and make the delay long next to the debounce
+            reachabilityManager.setReconnectJitter(RECONNECT_DELAY_MS * 2);
+            reachabilityManager.setRandom(new Random() {
+                @Override
+                public double nextDouble() {
+                    return 0.5;
+                }
+            });
+
+            changeConnectivity(reachabilityManager, true, ConnectivityManager.TYPE_WIFI, false);
+            changeConnectivity(reachabilityManager, false, AndroidNetworkReachabilityManager.NETWORK_TYPE_NONE, false);
+            waitForDebounce();
+            listener.reset();
+
+            // the network comes back, and the reachable notification is delayed by RECONNECT_DELAY_MS
+            changeConnectivity(reachabilityManager, true, ConnectivityManager.TYPE_WIFI, false);
+            waitForDebounce();
+            assertEquals(0, listener.reachableCount.get());
+
+            // it drops again before the delay is up
+            changeConnectivity(reachabilityManager, false, AndroidNetworkReachabilityManager.NETWORK_TYPE_NONE, false);
+            waitForDebounce();
+
+            // by now the reachable notification would have run, had it not been cancelled
+            waitOnHandler(RECONNECT_DELAY_MS);
+            assertEquals(0, listener.reachableCount.get());
+            assertEquals(0, listener.unreachableCount.get());
+            assertEquals(AndroidNetworkReachabilityManager.State.NOT_CONNECTED, reachabilityManager.getReportedState());
+        } finally {
+            reachabilityManager.stopListening();
+        }
+
+    }
+
+    private AndroidNetworkReachabilityManager createReachabilityManager() {
+        AndroidContext androidContext = new AndroidContext(new NoBroadcastsContext(getContext()));
+        return new AndroidNetworkReachabilityManager(androidContext, handler);
+    }
+
+    private AndroidNetworkReachabilityManager startReachabilityManager() {
+        AndroidNetworkReachabilityManager reachabilityManager = createReachabilityManager();
+        reachabilityManager.setDebounceDelay(DEBOUNCE_DELAY_MS);
+        reachabilityManager.setReconnectJitter(0);
+        reachabilityManager.addNetworkReachabilityListener(listener);
+        reachabilityManager.startListening();
+        return reachabilityManager;
+    }
+
+    private void changeConnectivity(final AndroidNetworkReachabilityManager reachabilityManager,
+                                    final boolean connected, final int networkType, final boolean metered) throws Exception {
+        runOnHandler(new Runnable() {
+            @Override
+            public void run() {
+                reachabilityManager.onConnectivityChanged(connected, networkType, metered);
+            }
+        });
+    }
+
+    /**
+     * Runs the given runnable on the handler thread, the way the receiver is called on the main
+     * looper in production, and waits for it to finish.
+     */
+    private void runOnHandler(final Runnable runnable) throws Exception {
+        final CountDownLatch doneSignal = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                doneSignal.countDown();
+            }
+        });
+        assertTrue(doneSignal.await(10, TimeUnit.SECONDS));
+    }
+
+    private void flushHandler() throws Exception {
+        runOnHandler(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    private void waitForDebounce() throws Exception {
+        waitOnHandler(DEBOUNCE_DELAY_MS);
+    }
+
+    /**
+     * Waits until the handler has run everything due within the given delay from now, and
+     * anything those runnables posted without a delay.  The handler runs messages in order of
+     * when they are due, so this does not depend on how fast the device is.
+     */
+    private void waitOnHandler(long delayMillis) throws Exception {
+        final CountDownLatch doneSignal = new CountDownLatch(1);
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                doneSignal.countDown();
+            }
+        }, delayMillis);
+        assertTrue(doneSignal.await(delayMillis + 10000, TimeUnit.MILLISECONDS));
+        flushHandler();
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.couchbase.lite.android;
+
+import com.couchbase.lite.LiteTestCase;
+
+public class AndroidSQLiteStorageEngineTest extends LiteTestCase {
+
+    public void testIncrementalVacuum() throws Exception {
+
+        AndroidSQLiteStorageEngine storageEngine = (AndroidSQLiteStorageEngine) database.getDatabase();
+
+        // the test database is freshly created, so it should have picked up auto_vacuum
+        assertTrue(storageEngine.isIncrementalVacuumEnabled());
+
+        int freePages = createFreePages(storageEngine);
+        assertTrue(freePages > 10);
+
+        assertEquals(10, storageEngine.incrementalVacuum(10));
+        assertEquals(freePages - 10, storageEngine.getFreelistCount());
+
+        assertEquals(freePages - 10, storageEngine.incrementalVacuum(0));
+        assertEquals(0, storageEngine.getFreelistCount());
+
+    }
+
+    /**
+     * Fills a scratch table and drops it to leave free pages behind.
+     *
+     * @return the number of free pages afterwards
+     */
+    static int createFreePages(AndroidSQLiteStorageEngine storageEngine) throws Exception {
+        byte[] data = new byte[4096];
+        storageEngine.execSQL("CREATE TABLE scratch (data BLOB)");
+        for (int i = 0; i < 100; i++) {
+            storageEngine.execSQL("INSERT INTO scratch (data) VALUES (?)", new Object[]{data});
+        }
+        storageEngine.execSQL("DROP TABLE scratch");
+        return storageEngine.getFreelistCount();
+    }
+
+}
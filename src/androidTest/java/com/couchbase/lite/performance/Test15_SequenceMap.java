@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.performance;
+
+import com.couchbase.lite.LiteTestCase;
+import com.couchbase.lite.support.SequenceMap;
+import com.couchbase.lite.util.Log;
+
+public class Test15_SequenceMap extends LiteTestCase {
+
+    public static final String TAG = "SequenceMapPerformance";
+
+    private static final String _value = "12345";
+
+    /**
+     * Mimics the way the replicator uses the SequenceMap: sequences are added as
+     * revisions are queued, and removed out of order as they complete, with a
+     * bounded number in flight at any time.
+     */
+    public void testSequenceMapPerformance() {
+
+        SequenceMap map = new SequenceMap();
+
+        int numberOfSequences = getNumberOfSequences();
+        int inFlight = getNumberInFlight();
+
+        long[] window = new long[inFlight];
+        int windowCount = 0;
+
+        long startMillis = System.currentTimeMillis();
+
+        for (int i = 0; i < numberOfSequences; i++) {
+            window[windowCount++] = map.addValue(_value);
+
+            if (windowCount == inFlight) {
+                // complete the in-flight sequences newest first, so the checkpointed
+                // sequence only advances when the oldest one is removed
+                for (int j = windowCount - 1; j >= 0; j--) {
+                    map.removeSequence(window[j]);
+                    map.getCheckpointedSequence();
+                }
+                windowCount = 0;
+            }
+        }
+
+        for (int j = windowCount - 1; j >= 0; j--) {
+            map.removeSequence(window[j]);
+        }
+
+        assertTrue(map.isEmpty());
+        assertEquals(numberOfSequences, map.getCheckpointedSequence());
+
+        Log.v("PerformanceStats",TAG+","+Long.valueOf(System.currentTimeMillis()-startMillis).toString()+","+numberOfSequences+","+inFlight);
+    }
+
+    private int getNumberOfSequences() {
+        return Integer.parseInt(System.getProperty("Test15_numberOfSequences"));
+    }
+
+    private int getNumberInFlight() {
+        return Integer.parseInt(System.getProperty("Test15_numberInFlight"));
+    }
+}
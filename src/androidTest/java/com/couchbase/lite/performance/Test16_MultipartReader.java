@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.performance;
+
+import com.couchbase.lite.LiteTestCase;
+import com.couchbase.lite.support.MultipartReader;
+import com.couchbase.lite.support.MultipartReaderDelegate;
+import com.couchbase.lite.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+public class Test16_MultipartReader extends LiteTestCase {
+
+    public static final String TAG = "MultipartReaderPerformance";
+
+    private static final String BOUNDARY = "BOUNDARY";
+
+    /**
+     * Counts the bytes handed to it rather than keeping them, so the only memory
+     * held during the run is whatever the reader itself buffers.
+     */
+    class CountingMultipartReaderDelegate implements MultipartReaderDelegate {
+
+        private int partCount;
+        private long byteCount;
+
+        public void startedPart(Map<String, String> headers) {
+            partCount++;
+        }
+
+        public void appendToPart(byte[] data) {
+            byteCount += data.length;
+        }
+
+        public void finishedPart() {
+        }
+
+    }
+
+    public void testMultipartReaderPerformance() {
+
+        Charset utf8 = Charset.forName("UTF-8");
+
+        int sizeOfPart = getSizeOfPart();
+        int numberOfParts = getNumberOfParts();
+        int chunkSize = getChunkSize();
+
+        // the first boundary has no leading CRLF, as in MultipartReaderTest
+        byte[] firstPartHeader = ("--" + BOUNDARY + "\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes(utf8);
+        byte[] partHeader = ("\r\n--" + BOUNDARY + "\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes(utf8);
+        byte[] trailer = ("\r\n--" + BOUNDARY + "--").getBytes(utf8);
+
+        // the body is a repeating pattern that never contains the boundary
+        byte[] chunk = new byte[chunkSize];
+        Arrays.fill(chunk, (byte) 'x');
+
+        CountingMultipartReaderDelegate delegate = new CountingMultipartReaderDelegate();
+        MultipartReader reader = new MultipartReader("multipart/related; boundary=\"" + BOUNDARY + "\"", delegate);
+
+        long startMillis = System.currentTimeMillis();
+
+        for (int i = 0; i < numberOfParts; i++) {
+            reader.appendData(i == 0 ? firstPartHeader : partHeader);
+            int remaining = sizeOfPart;
+            while (remaining > 0) {
+                if (remaining < chunkSize) {
+                    reader.appendData(Arrays.copyOf(chunk, remaining));
+                    remaining = 0;
+                } else {
+                    reader.appendData(chunk);
+                    remaining -= chunkSize;
+                }
+            }
+        }
+        reader.appendData(trailer);
+
+        assertTrue(reader.finished());
+        assertEquals(numberOfParts, delegate.partCount);
+        assertEquals((long) sizeOfPart * numberOfParts, delegate.byteCount);
+
+        Log.v("PerformanceStats",TAG+","+Long.valueOf(System.currentTimeMillis()-startMillis).toString()+","+numberOfParts+","+sizeOfPart+","+chunkSize);
+    }
+
+    private int getSizeOfPart() {
+        return Integer.parseInt(System.getProperty("Test16_sizeOfPart"));
+    }
+
+    private int getNumberOfParts() {
+        return Integer.parseInt(System.getProperty("Test16_numberOfParts"));
+    }
+
+    private int getChunkSize() {
+        return Integer.parseInt(System.getProperty("Test16_chunkSize"));
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2012 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.performance;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.LiteTestCase;
+import com.couchbase.lite.LiteTestContext;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.TransactionalTask;
+import com.couchbase.lite.listener.LiteListener;
+import com.couchbase.lite.replicator.Replication;
+import com.couchbase.lite.util.Log;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replicates between two local Managers over loopback, with one of them served by the
+ * embedded listener, to measure peer-to-peer sync throughput without a Sync Gateway.
+ */
+public class Test17_ListenerReplication extends LiteTestCase {
+
+    public static final String TAG = "ListenerReplicationPerformance";
+
+    private static final String SOURCE_DB = "p2p-source";
+
+    private static final String _propertyValue = "1234567";
+
+    // TJWS does not reliably stop (see LiteTestCase.startListener), so one listener is shared
+    private static LiteListener peerListener = null;
+    private static Manager peerManager = null;
+
+    @Override
+    protected void setUp() throws Exception {
+        Log.v(TAG, "ListenerReplicationPerformance setUp");
+        super.setUp();
+
+        if (peerListener == null) {
+            peerManager = new Manager(new LiteTestContext("p2plistener"), Manager.DEFAULT_OPTIONS);
+            peerListener = new LiteListener(peerManager, getListenerPort(), null);
+            peerListener.start();
+        }
+
+        Database sourceDb = peerManager.getExistingDatabase(SOURCE_DB);
+        if (sourceDb != null) {
+            sourceDb.delete();
+        }
+        final Database peerDb = peerManager.getDatabase(SOURCE_DB);
+
+        assertTrue(peerDb.runInTransaction(new TransactionalTask() {
+
+            public boolean run() {
+
+                String[] bigObj = new String[getSizeOfDocument()];
+                for (int i = 0; i < getSizeOfDocument(); i++) {
+                    bigObj[i] = _propertyValue;
+                }
+
+                for (int i = 0; i < getNumberOfDocuments(); i++) {
+                    Map<String, Object> props = new HashMap<String, Object>();
+                    props.put("bigArray", bigObj);
+                    try {
+                        peerDb.createDocument().putProperties(props);
+                    } catch (Throwable t) {
+                        Log.e(TAG, "Document create failed", t);
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+        }));
+    }
+
+    public void testPullFromListenerPerformance() throws Exception {
+
+        URL remote = new URL(String.format("http://127.0.0.1:%d/%s", getListenerPort(), SOURCE_DB));
+
+        long startMillis = System.currentTimeMillis();
+
+        Replication repl = database.createPullReplication(remote);
+        repl.setContinuous(false);
+        runReplication(repl);
+
+        assertNull(repl.getLastError());
+        assertEquals(getNumberOfDocuments(), database.getDocumentCount());
+
+        Log.v("PerformanceStats",TAG+","+Long.valueOf(System.currentTimeMillis()-startMillis).toString()+","+getNumberOfDocuments()+","+getSizeOfDocument());
+    }
+
+    private int getListenerPort() {
+        return Integer.parseInt(System.getProperty("Test17_listenerPort"));
+    }
+
+    private int getSizeOfDocument() {
+        return Integer.parseInt(System.getProperty("Test17_sizeOfDocument"));
+    }
+
+    private int getNumberOfDocuments() {
+        return Integer.parseInt(System.getProperty("Test17_numberOfDocuments"));
+    }
+}
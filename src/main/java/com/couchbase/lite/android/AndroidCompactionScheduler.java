@@ -0,0 +1,425 @@
+package com.couchbase.lite.android;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+
+import com.couchbase.lite.AsyncTask;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.storage.ContentValues;
+import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Periodically checks the open databases of a Manager and compacts the ones that have built up
+ * enough obsolete revision bodies or free pages, preferably while the device is charging.
+ *
+ * By default a run clears obsolete revision bodies in small batches and then hands the freed
+ * pages back with incremental_vacuum, so it never rewrites the whole file.  Database.compact()
+ * also prunes revision trees and deletes unreferenced attachments, but it ends with a full
+ * VACUUM that needs as much free disk space as the database itself and holds the Manager's
+ * work executor until it is done; it is only used if setAllowFullCompaction(true) is called.
+ *
+ * The periodic check is timed on the main looper, which only looks at the battery and screen;
+ * enumerating the Manager's databases and all database work is handed to the Manager's own
+ * executor, so the scheduler does not start any threads.  Databases the app has closed are left
+ * alone, and once the Manager is closed the scheduler stops itself.
+ */
+public class AndroidCompactionScheduler {
+
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 30 * 60 * 1000;
+    public static final int DEFAULT_OBSOLETE_REVISION_THRESHOLD = 1000;
+    public static final int DEFAULT_FREE_PAGE_THRESHOLD = 1024;
+
+    // how many revision bodies to clear per UPDATE, and free pages to hand back per vacuum step
+    private static final int CLEAR_BODIES_PER_STEP = 500;
+    private static final int VACUUM_PAGES_PER_STEP = 256;
+
+    private android.content.Context wrappedContext;
+    private Manager manager;
+    private Handler handler;
+    private boolean running;
+
+    private long checkInterval = DEFAULT_CHECK_INTERVAL_MS;
+    private int obsoleteRevisionThreshold = DEFAULT_OBSOLETE_REVISION_THRESHOLD;
+    private int freePageThreshold = DEFAULT_FREE_PAGE_THRESHOLD;
+    private boolean requireCharging = true;
+    private boolean requireScreenOff = false;
+    private boolean allowFullCompaction = false;
+
+    private final Map<String, ScheduledRun> scheduled = new HashMap<String, ScheduledRun>();
+    private final List<CompactionListener> listeners = new CopyOnWriteArrayList<CompactionListener>();
+
+    /**
+     * Notified on the Manager's executor when a scheduled run starts and finishes.
+     */
+    public interface CompactionListener {
+
+        /**
+         * @param fullCompaction true if Database.compact() is being run, false if obsolete
+         *                       bodies are cleared and free pages reclaimed incrementally
+         */
+        void compactionStarted(String databaseName, boolean fullCompaction);
+
+        /**
+         * @param error the exception that aborted the run, a CancellationException if it was
+         *              cancelled part way through, or null if it succeeded
+         */
+        void compactionFinished(String databaseName, Throwable error);
+    }
+
+    private static class ScheduledRun {
+        private Future future;
+        private volatile boolean cancelled;
+    }
+
+    private final Runnable checkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkDatabases();
+            synchronized (AndroidCompactionScheduler.this) {
+                if (running) {
+                    handler.postDelayed(this, checkInterval);
+                }
+            }
+        }
+    };
+
+    public AndroidCompactionScheduler(AndroidContext context, Manager manager) {
+        this.wrappedContext = context.getWrappedContext();
+        this.manager = manager;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    public synchronized void start() {
+        if (!running) {
+            Log.v(Log.TAG_DATABASE, "%s: start() checking every %d ms", this, checkInterval);
+            running = true;
+            handler.postDelayed(checkRunnable, checkInterval);
+        }
+    }
+
+    /**
+     * Stops the periodic check and cancels every scheduled run, see cancel().
+     */
+    public synchronized void stop() {
+        if (running) {
+            Log.v(Log.TAG_DATABASE, "%s: stop()", this);
+            handler.removeCallbacks(checkRunnable);
+            running = false;
+        }
+        for (String databaseName : new ArrayList<String>(scheduled.keySet())) {
+            cancel(databaseName);
+        }
+    }
+
+    /**
+     * Cancels the run for the given database.  A run that has not started yet never starts; one
+     * that is clearing bodies or reclaiming pages stops after its current step.  A full
+     * Database.compact() cannot be interrupted and is allowed to finish.
+     *
+     * @return true if there was a run to cancel
+     */
+    public synchronized boolean cancel(String databaseName) {
+        ScheduledRun run = scheduled.remove(databaseName);
+        if (run == null) {
+            return false;
+        }
+        Log.v(Log.TAG_DATABASE, "%s: cancelled compaction of %s", this, databaseName);
+        run.cancelled = true;
+        run.future.cancel(false);
+        return true;
+    }
+
+    /**
+     * Returns the names of the databases with a run queued or in progress.
+     */
+    public synchronized List<String> getScheduledDatabaseNames() {
+        return new ArrayList<String>(scheduled.keySet());
+    }
+
+    public void addCompactionListener(CompactionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeCompactionListener(CompactionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Checks all open databases right away, rather than waiting for the next interval.  This
+     * works whether or not start() has been called; the charging and screen requirements still
+     * apply.
+     */
+    public void checkDatabases() {
+        if (!isDeviceReady()) {
+            Log.v(Log.TAG_DATABASE, "%s: device not idle/charging, skipping check", this);
+            return;
+        }
+        try {
+            manager.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleOpenDatabases();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            managerClosed();
+        }
+    }
+
+    /**
+     * Schedules a run for each open database.  Called on the Manager's executor rather than the
+     * main looper, since allOpenDatabases() is a live view of the Manager's databases.
+     */
+    void scheduleOpenDatabases() {
+        List<Database> databases;
+        try {
+            databases = new ArrayList<Database>(manager.allOpenDatabases());
+        } catch (ConcurrentModificationException e) {
+            Log.v(Log.TAG_DATABASE, "%s: databases changed while checking, retrying next interval", this);
+            return;
+        }
+        for (Database database : databases) {
+            if (database.isOpen()) {
+                schedule(database);
+            }
+        }
+    }
+
+    private synchronized void schedule(Database database) {
+        final String databaseName = database.getName();
+        if (scheduled.containsKey(databaseName)) {
+            return;
+        }
+        final ScheduledRun run = new ScheduledRun();
+        try {
+            run.future = database.runAsync(new AsyncTask() {
+                @Override
+                public void run(Database database) {
+                    try {
+                        if (!run.cancelled && database.isOpen()) {
+                            compactIfNeeded(database, run);
+                        }
+                    } finally {
+                        synchronized (AndroidCompactionScheduler.this) {
+                            if (scheduled.get(databaseName) == run) {
+                                scheduled.remove(databaseName);
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            managerClosed();
+            return;
+        }
+        scheduled.put(databaseName, run);
+    }
+
+    /**
+     * The Manager's executor no longer takes work, so there is nothing left to check.
+     */
+    private void managerClosed() {
+        Log.w(Log.TAG_DATABASE, "%s: Manager has been closed, stopping", this);
+        stop();
+    }
+
+    private void compactIfNeeded(Database database, ScheduledRun run) {
+        String databaseName = database.getName();
+        SQLiteStorageEngine storageEngine = database.getDatabase();
+
+        int obsoleteRevisions = getObsoleteRevisionCount(storageEngine);
+        int freePages = 0;
+        AndroidSQLiteStorageEngine androidStorageEngine = null;
+        if (storageEngine instanceof AndroidSQLiteStorageEngine
+                && ((AndroidSQLiteStorageEngine) storageEngine).isIncrementalVacuumEnabled()) {
+            androidStorageEngine = (AndroidSQLiteStorageEngine) storageEngine;
+            freePages = androidStorageEngine.getFreelistCount();
+        }
+
+        Log.v(Log.TAG_DATABASE, "%s: %s has %d obsolete revisions (counted up to %d), %d free pages",
+                this, databaseName, obsoleteRevisions, obsoleteRevisionThreshold, freePages);
+
+        boolean clearBodies = obsoleteRevisions >= obsoleteRevisionThreshold;
+        boolean reclaimPages = androidStorageEngine != null && (clearBodies || freePages >= freePageThreshold);
+        if (!clearBodies && !reclaimPages) {
+            return;
+        }
+        boolean fullCompaction = clearBodies && allowFullCompaction;
+
+        for (CompactionListener listener : listeners) {
+            listener.compactionStarted(databaseName, fullCompaction);
+        }
+
+        Throwable error = null;
+        try {
+            if (fullCompaction) {
+                database.compact();
+            } else {
+                if (clearBodies) {
+                    clearObsoleteBodies(storageEngine, run);
+                }
+                if (reclaimPages) {
+                    reclaimFreePages(androidStorageEngine, run);
+                }
+                if (run.cancelled) {
+                    error = new CancellationException("Compaction of " + databaseName + " was cancelled");
+                }
+            }
+        } catch (Exception e) {
+            Log.e(Log.TAG_DATABASE, "%s: error compacting %s", e, this, databaseName);
+            error = e;
+        }
+
+        for (CompactionListener listener : listeners) {
+            listener.compactionFinished(databaseName, error);
+        }
+    }
+
+    /**
+     * Clears the JSON of non-current revisions, as Database.compact() does, a batch at a time so
+     * that writers are not held up and cancel() takes effect between batches.  Each batch starts
+     * after the last sequence of the previous one, so it is a range scan on the rowid rather than
+     * a scan of revs from the start.
+     */
+    private void clearObsoleteBodies(SQLiteStorageEngine storageEngine, ScheduledRun run) {
+        ContentValues args = new ContentValues();
+        args.put("json", (String) null);
+        long lastSequence = 0;
+        while (!run.cancelled) {
+            long fromSequence = lastSequence;
+            int found = 0;
+            Cursor cursor = storageEngine.rawQuery(
+                    "SELECT sequence FROM revs WHERE current=0 AND json IS NOT NULL AND sequence > ? ORDER BY sequence LIMIT "
+                            + CLEAR_BODIES_PER_STEP, new String[]{Long.toString(fromSequence)});
+            try {
+                while (cursor.moveToNext()) {
+                    lastSequence = cursor.getLong(0);
+                    found++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (found == 0) {
+                return;
+            }
+            storageEngine.update("revs", args, "current=0 AND json IS NOT NULL AND sequence > ? AND sequence <= ?",
+                    new String[]{Long.toString(fromSequence), Long.toString(lastSequence)});
+        }
+    }
+
+    private void reclaimFreePages(AndroidSQLiteStorageEngine storageEngine, ScheduledRun run) {
+        int reclaimed;
+        do {
+            if (run.cancelled) {
+                return;
+            }
+            reclaimed = storageEngine.incrementalVacuum(VACUUM_PAGES_PER_STEP);
+        } while (reclaimed > 0);
+    }
+
+    /**
+     * Non-current revisions that still have a body; these are what Database.compact() clears.
+     * There is no index on current or json, so this scans revs, but it stops counting at the
+     * threshold: a database that needs compacting costs at most that many matching rows, and
+     * only one that does not is scanned to the end.
+     */
+    private int getObsoleteRevisionCount(SQLiteStorageEngine storageEngine) {
+        Cursor cursor = storageEngine.rawQuery(
+                "SELECT COUNT(*) FROM (SELECT 1 FROM revs WHERE current=0 AND json IS NOT NULL LIMIT "
+                        + obsoleteRevisionThreshold + ")", null);
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private boolean isDeviceReady() {
+        if (requireCharging) {
+            // ACTION_BATTERY_CHANGED is sticky, so this returns the current state without registering
+            Intent battery = wrappedContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
+                return false;
+            }
+        }
+        if (requireScreenOff) {
+            PowerManager powerManager = (PowerManager) wrappedContext.getSystemService(android.content.Context.POWER_SERVICE);
+            if (powerManager.isScreenOn()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    public int getObsoleteRevisionThreshold() {
+        return obsoleteRevisionThreshold;
+    }
+
+    public void setObsoleteRevisionThreshold(int obsoleteRevisionThreshold) {
+        this.obsoleteRevisionThreshold = obsoleteRevisionThreshold;
+    }
+
+    public int getFreePageThreshold() {
+        return freePageThreshold;
+    }
+
+    public void setFreePageThreshold(int freePageThreshold) {
+        this.freePageThreshold = freePageThreshold;
+    }
+
+    public boolean isRequireCharging() {
+        return requireCharging;
+    }
+
+    public void setRequireCharging(boolean requireCharging) {
+        this.requireCharging = requireCharging;
+    }
+
+    public boolean isRequireScreenOff() {
+        return requireScreenOff;
+    }
+
+    public void setRequireScreenOff(boolean requireScreenOff) {
+        this.requireScreenOff = requireScreenOff;
+    }
+
+    public boolean isAllowFullCompaction() {
+        return allowFullCompaction;
+    }
+
+    /**
+     * If set, crossing the obsolete revision threshold runs Database.compact() instead of
+     * clearing bodies incrementally.  That also prunes revision trees and deletes unreferenced
+     * attachments, but finishes with a full VACUUM which rewrites the whole database file,
+     * temporarily needs as much free space again, and blocks the Manager's work executor.
+     */
+    public void setAllowFullCompaction(boolean allowFullCompaction) {
+        this.allowFullCompaction = allowFullCompaction;
+    }
+
+}
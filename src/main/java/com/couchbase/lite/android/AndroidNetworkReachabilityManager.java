@@ -4,6 +4,10 @@ import android.content.BroadcastReceiver;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.couchbase.lite.AsyncTask;
 import com.couchbase.lite.Context;
@@ -12,13 +16,38 @@ import com.couchbase.lite.NetworkReachabilityManager;
 import com.couchbase.lite.replicator.Replication;
 import com.couchbase.lite.util.Log;
 
+import java.util.Random;
+
 public class AndroidNetworkReachabilityManager extends NetworkReachabilityManager {
 
+    public static final long DEFAULT_DEBOUNCE_DELAY_MS = 2000;
+    public static final long DEFAULT_RECONNECT_JITTER_MS = 1000;
+    public static final long DEFAULT_MAX_RECONNECT_DELAY_MS = 30 * 1000;
+    public static final long DEFAULT_FLAP_WINDOW_MS = 60 * 1000;
+
+    /** Returned by getNetworkType() when there is no active network **/
+    public static final int NETWORK_TYPE_NONE = -1;
+
     private Context context;
     private boolean listening;
     private android.content.Context wrappedContext;
-    private ConnectivityBroadcastReceiver receiver;
+    ConnectivityBroadcastReceiver receiver;
     private State state;
+    private int networkType;
+    private boolean metered;
+
+    private Handler handler;
+    private State notifiedState;
+    private State reportedState;
+    private long debounceDelay = DEFAULT_DEBOUNCE_DELAY_MS;
+    private boolean requireUnmeteredNetwork;
+
+    private Random random = new Random();
+    private long reconnectJitter = DEFAULT_RECONNECT_JITTER_MS;
+    private long maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY_MS;
+    private long flapWindow = DEFAULT_FLAP_WINDOW_MS;
+    private int reconnectAttempts;
+    private long lastReconnectTime;
 
     public enum State {
         UNKNOWN,
@@ -38,10 +67,21 @@ public class AndroidNetworkReachabilityManager extends NetworkReachabilityManage
     }
 
     public AndroidNetworkReachabilityManager(AndroidContext context) {
+        this(context, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * @param handler where debounced and delayed notifications are run; tests pass their own
+     */
+    AndroidNetworkReachabilityManager(AndroidContext context, Handler handler) {
         this.context = context;
         this.wrappedContext = context.getWrappedContext();
         this.receiver = new ConnectivityBroadcastReceiver();
         this.state = State.UNKNOWN;
+        this.notifiedState = State.UNKNOWN;
+        this.reportedState = State.UNKNOWN;
+        this.networkType = NETWORK_TYPE_NONE;
+        this.handler = handler;
     }
 
 
@@ -63,12 +103,220 @@ public class AndroidNetworkReachabilityManager extends NetworkReachabilityManage
             } catch (Exception e) {
                 Log.e(Log.TAG_SYNC, "%s: stopListening() exception unregistering %s with context %s", e, this, receiver, wrappedContext);
             }
+            handler.removeCallbacks(notifyRunnable);
+            handler.removeCallbacks(reachableRunnable);
+            notifiedState = State.UNKNOWN;
+            reportedState = State.UNKNOWN;
             context = null;
             listening = false;
         }
     }
 
-    private class ConnectivityBroadcastReceiver extends BroadcastReceiver {
+    /**
+     * Returns the state of the active network as of the last connectivity broadcast.  This is not
+     * debounced and ignores setRequireUnmeteredNetwork(); see getReportedState() for what
+     * listeners have been told.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the state last reported to listeners, i.e. after debouncing, after the reconnect
+     * delay, and with a metered network counted as NOT_CONNECTED if an unmetered one is required.
+     */
+    public State getReportedState() {
+        return reportedState;
+    }
+
+    /**
+     * Returns the type of the active network as one of the ConnectivityManager.TYPE_* constants,
+     * or NETWORK_TYPE_NONE if there is none.
+     */
+    public int getNetworkType() {
+        return networkType;
+    }
+
+    /**
+     * Returns true if the active network may cost the user money, such as a cellular connection.
+     * Replications can use this to defer work that is not urgent, like attachment downloads.
+     */
+    public boolean isMetered() {
+        return metered;
+    }
+
+    public long getDebounceDelay() {
+        return debounceDelay;
+    }
+
+    /**
+     * Sets how long connectivity has to stay in a new state before listeners are told about it,
+     * so that a network that drops and comes back quickly does not restart every replication.
+     */
+    public void setDebounceDelay(long debounceDelay) {
+        this.debounceDelay = debounceDelay;
+    }
+
+    public long getReconnectJitter() {
+        return reconnectJitter;
+    }
+
+    /**
+     * Sets the window over which listeners are told the network is reachable again, picked at
+     * random so that every device behind the same cell tower does not reconnect at once.  The
+     * window only grows while the network is flapping: it doubles each time the network comes
+     * back within flapWindow of the previous time, up to maxReconnectDelay.  It does not react to
+     * server errors, which are the replicator's business.  A value of 0 reports reconnects as
+     * soon as they are debounced.
+     */
+    public void setReconnectJitter(long reconnectJitter) {
+        this.reconnectJitter = reconnectJitter;
+    }
+
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    public void setMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    public long getFlapWindow() {
+        return flapWindow;
+    }
+
+    /**
+     * Sets how soon the network has to come back after the previous time for it to count as
+     * flapping and grow the reconnect window; a device roaming between access points every few
+     * minutes keeps the base window.
+     */
+    public void setFlapWindow(long flapWindow) {
+        this.flapWindow = flapWindow;
+    }
+
+    public boolean isRequireUnmeteredNetwork() {
+        return requireUnmeteredNetwork;
+    }
+
+    /**
+     * If set, a metered network is reported to listeners as unreachable, so replications are held
+     * back until the device is on Wi-Fi (or another unmetered network).
+     */
+    public void setRequireUnmeteredNetwork(boolean requireUnmeteredNetwork) {
+        this.requireUnmeteredNetwork = requireUnmeteredNetwork;
+        if (listening) {
+            handler.removeCallbacks(notifyRunnable);
+            handler.postDelayed(notifyRunnable, debounceDelay);
+        }
+    }
+
+    private State getEffectiveState() {
+        if (state == State.CONNECTED && requireUnmeteredNetwork && metered) {
+            return State.NOT_CONNECTED;
+        }
+        return state;
+    }
+
+    private final Runnable notifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            State effectiveState = getEffectiveState();
+            if (!listening || effectiveState == notifiedState) {
+                return;
+            }
+            Log.v(Log.TAG_SYNC, "%s: network is now %s (type: %d, metered: %s)", AndroidNetworkReachabilityManager.this, effectiveState, networkType, metered);
+            boolean initialState = notifiedState == State.UNKNOWN;
+            notifiedState = effectiveState;
+            handler.removeCallbacks(reachableRunnable);
+
+            if (effectiveState == State.NOT_CONNECTED && reportedState != State.NOT_CONNECTED) {
+                reportedState = State.NOT_CONNECTED;
+                notifyListenersNetworkUneachable();
+            }
+
+            if (effectiveState == State.CONNECTED) {
+                if (initialState) {
+                    reportedState = State.CONNECTED;
+                    notifyListenersNetworkReachable();
+                } else {
+                    long delay = nextReconnectDelay();
+                    Log.v(Log.TAG_SYNC, "%s: reporting network reachable in %d ms", AndroidNetworkReachabilityManager.this, delay);
+                    handler.postDelayed(reachableRunnable, delay);
+                }
+            }
+        }
+    };
+
+    private final Runnable reachableRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (listening && notifiedState == State.CONNECTED) {
+                reportedState = State.CONNECTED;
+                notifyListenersNetworkReachable();
+            }
+        }
+    };
+
+    /**
+     * Picks a random delay up to the current backoff window ("full jitter").
+     */
+    private long nextReconnectDelay() {
+        return (long) (random.nextDouble() * nextReconnectWindow(System.currentTimeMillis()));
+    }
+
+    /**
+     * Returns the backoff window for a reconnect at the given time.  The window doubles while
+     * the network keeps coming back within flapWindow of the previous reconnect, is capped at
+     * maxReconnectDelay, and resets to reconnectJitter once a reconnect comes later than that.
+     */
+    long nextReconnectWindow(long now) {
+        if (now - lastReconnectTime > flapWindow) {
+            reconnectAttempts = 0;
+        }
+        lastReconnectTime = now;
+
+        long window = Math.min(maxReconnectDelay, reconnectJitter << Math.min(reconnectAttempts, 16));
+        reconnectAttempts++;
+        return window;
+    }
+
+    void setRandom(Random random) {
+        this.random = random;
+    }
+
+    private boolean isNetworkMetered(ConnectivityManager connectivityManager, NetworkInfo networkInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return connectivityManager.isActiveNetworkMetered();
+        }
+        int type = networkInfo.getType();
+        return type != ConnectivityManager.TYPE_WIFI && type != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    /**
+     * Records the new state of the active network and schedules the (debounced) notification of
+     * listeners.  Called on the handler's thread.
+     */
+    void onConnectivityChanged(boolean connected, int networkType, boolean metered) {
+        if (connected) {
+            this.state = State.CONNECTED;
+            this.networkType = networkType;
+            this.metered = metered;
+        } else {
+            this.state = State.NOT_CONNECTED;
+            this.networkType = NETWORK_TYPE_NONE;
+            this.metered = false;
+        }
+
+        handler.removeCallbacks(notifyRunnable);
+        if (notifiedState == State.UNKNOWN) {
+            // the first broadcast is the sticky one delivered on registration; report it right away
+            notifyRunnable.run();
+        } else {
+            handler.postDelayed(notifyRunnable, debounceDelay);
+        }
+    }
+
+    class ConnectivityBroadcastReceiver extends BroadcastReceiver {
 
         @Override
         public void onReceive(android.content.Context context, Intent intent) {
@@ -79,19 +327,19 @@ public class AndroidNetworkReachabilityManager extends NetworkReachabilityManage
             }
 
             boolean noConnectivity = intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
-
             if (noConnectivity) {
-                state = State.NOT_CONNECTED;
-            } else {
-                state = State.CONNECTED;
+                onConnectivityChanged(false, NETWORK_TYPE_NONE, false);
+                return;
             }
 
-            if (state == State.NOT_CONNECTED) {
-                notifyListenersNetworkUneachable();
-            }
+            ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(android.content.Context.CONNECTIVITY_SERVICE);
+            NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
 
-            if (state == State.CONNECTED) {
-                notifyListenersNetworkReachable();
+            // during a handover the active network can still be CONNECTING or DISCONNECTED
+            if (networkInfo != null && networkInfo.isConnected()) {
+                onConnectivityChanged(true, networkInfo.getType(), isNetworkMetered(connectivityManager, networkInfo));
+            } else {
+                onConnectivityChanged(false, NETWORK_TYPE_NONE, false);
             }
 
         }
@@ -32,6 +32,9 @@ import java.util.Map;
 public class AndroidSQLiteStorageEngine implements SQLiteStorageEngine {
     public static final String TAG = "AndroidSQLiteStorageEngine";
 
+    // value reported by "PRAGMA auto_vacuum" when incremental vacuuming is enabled
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
     private SQLiteDatabase database;
 
     @Override
@@ -43,6 +46,13 @@ public class AndroidSQLiteStorageEngine implements SQLiteStorageEngine {
         try {
             database = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.CREATE_IF_NECESSARY);
             Log.v(Log.TAG_DATABASE, "%s: Opened Android sqlite db", this);
+            if (database.getVersion() == 0) {
+                // Android has already created its android_metadata table by this point, and
+                // once any table exists a change of auto_vacuum only takes effect after a
+                // VACUUM.  The file is still near-empty, so that VACUUM is cheap.
+                database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                database.execSQL("VACUUM");
+            }
             TDCollateJSON.registerCustomCollators(database);
             RevCollator.register(database);
         } catch(SQLiteException e) {
@@ -131,6 +141,46 @@ public class AndroidSQLiteStorageEngine implements SQLiteStorageEngine {
         return database.delete(table, whereClause, whereArgs);
     }
 
+    /**
+     * Returns true if this database was created with auto_vacuum=INCREMENTAL, in which case
+     * free pages can be reclaimed with incrementalVacuum() rather than a full VACUUM.
+     */
+    public boolean isIncrementalVacuumEnabled() {
+        return queryPragmaInt("auto_vacuum") == AUTO_VACUUM_INCREMENTAL;
+    }
+
+    /**
+     * Returns the number of unused pages in the database file.
+     */
+    public int getFreelistCount() {
+        return queryPragmaInt("freelist_count");
+    }
+
+    /**
+     * Moves up to maxPages free pages to the end of the file and truncates it.  Unlike VACUUM
+     * this does not rewrite the whole database, so it can be run in small steps while the
+     * database is in use.  A maxPages of 0 reclaims every free page.
+     *
+     * @return the number of pages reclaimed, which is 0 if incremental vacuuming is not enabled
+     */
+    public int incrementalVacuum(int maxPages) {
+        if (!isIncrementalVacuumEnabled()) {
+            return 0;
+        }
+        int freePagesBefore = getFreelistCount();
+        android.database.Cursor cursor = database.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+        try {
+            // the pragma does its work one page per step
+            while (cursor.moveToNext()) {
+            }
+        } finally {
+            cursor.close();
+        }
+        int reclaimed = freePagesBefore - getFreelistCount();
+        Log.v(Log.TAG_DATABASE, "%s: Reclaimed %d of %d free pages", this, reclaimed, freePagesBefore);
+        return reclaimed;
+    }
+
     @Override
     public void close() {
         database.close();
@@ -144,6 +194,15 @@ public class AndroidSQLiteStorageEngine implements SQLiteStorageEngine {
                 '}';
     }
 
+    private int queryPragmaInt(String pragma) {
+        android.database.Cursor cursor = database.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
     private android.content.ContentValues _toAndroidContentValues(ContentValues values) {
         android.content.ContentValues contentValues = new android.content.ContentValues(values.size());
 